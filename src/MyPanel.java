@@ -1,13 +1,24 @@
-
 import PathFinding.GraphBuilder;
 import PathFinding.Point;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.event.KeyEvent;
-import java.util.ArrayList;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 
 /*
  * To change this license header, choose License Headers in Project Properties.
@@ -15,6 +26,10 @@ import java.util.Arrays;
  * and open the template in the editor.
  */
 /**
+ * Left click or drag toggles obstacles, right drag pans and the mouse wheel
+ * zooms. The map is drawn from cached images of 64x64 cell tiles, which are
+ * only redrawn when a cell in them changes, and only the tiles in view are
+ * drawn at all.
  *
  * @author amauryesparza
  */
@@ -25,22 +40,102 @@ public class MyPanel extends javax.swing.JPanel {
     private final int finalX = 10;
     private final int finalY = 20;
     private Point[] path;
-    private ArrayList<Point> obstacles;
-    private Point[] waypoints;
-    private int num_waypoints;
     private static final int RECT_SIZE = 10;
     int last_x;
     int last_y;
 
+    //Obstacles and waypoints as one bitset per tile, keyed by tile position.
+    //A tile's word i holds row i of its cells.
+    private static final int TILE = 64;
+    private HashMap<Long, long[]> obstacles;
+    private HashMap<Long, long[]> waypoints;
+    private int max_x; //the furthest obstacle, to size the graph
+    private int max_y;
+    private int map_version; //bumped on every edit, so stale paths get thrown away
+
+    //Rendered tiles at the current zoom, least recently drawn first. The
+    //cache holds about 64 MB of pixels, or at least a screenful of tiles.
+    private static final int MAX_CACHED_PIXELS = 1 << 24;
+    private final LinkedHashMap<Long, BufferedImage> tile_images;
+
+    private int cell_size = RECT_SIZE;
+    private int view_x; //the map pixel at the top left of the panel
+    private int view_y;
+    private int pan_x;
+    private int pan_y;
+
+    private PathWorker worker;
+    private PathWorker running; //still in the background, even if cancelled
+    private boolean path_pending; //path() was called while running
+    private String status;
+    private long status_since; //when the current path() started
+    private final Timer ticker; //repaints the time spent while a worker runs
+
     /**
      * Creates new form MyPanel
      */
     public MyPanel() {
-        obstacles = new ArrayList<>();
+        obstacles = new HashMap<>();
+        waypoints = new HashMap<>();
+        tile_images = new LinkedHashMap<Long, BufferedImage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+                int tile_size = TILE * cell_size;
+                int visible = (MyPanel.this.getWidth() / tile_size + 2) * (MyPanel.this.getHeight() / tile_size + 2);
+                return size() > Math.max(visible, MAX_CACHED_PIXELS / (tile_size * tile_size));
+            }
+        };
         last_x = -1;
         last_y = -1;
+        ticker = new Timer(500, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                repaint();
+            }
+        });
         initComponents();
 
+        MouseAdapter view_listener = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent evt) {
+                pan_x = evt.getX();
+                pan_y = evt.getY();
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent evt) {
+                if (SwingUtilities.isRightMouseButton(evt)) {
+                    view_x -= evt.getX() - pan_x;
+                    view_y -= evt.getY() - pan_y;
+                    pan_x = evt.getX();
+                    pan_y = evt.getY();
+                    repaint();
+                }
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent evt) {
+                zoom(evt.getX(), evt.getY(), evt.getWheelRotation() < 0 ? 2 : 0.5);
+            }
+        };
+        addMouseListener(view_listener);
+        addMouseMotionListener(view_listener);
+        addMouseWheelListener(view_listener);
+    }
+
+    /**
+     * Zooms around a point on the panel, keeping the cell under it in place.
+     */
+    private void zoom(int x, int y, double factor) {
+        int new_size = (int) Math.max(1, Math.min(40, cell_size * factor));
+        if (new_size == cell_size) {
+            return;
+        }
+        view_x = (int) ((long) (view_x + x) * new_size / cell_size) - x;
+        view_y = (int) ((long) (view_y + y) * new_size / cell_size) - y;
+        cell_size = new_size;
+        tile_images.clear();
+        repaint();
     }
 
     @Override
@@ -49,14 +144,25 @@ public class MyPanel extends javax.swing.JPanel {
         g.setColor(Color.WHITE);
         g.fillRect(0, 0, getWidth(), getHeight());
 
-        g.setColor(Color.red);
-        for (Point p : obstacles) {
-            g.fillRect(p.x * RECT_SIZE, p.y * RECT_SIZE, RECT_SIZE, RECT_SIZE);
-        }
-        g.setColor(Color.blue);
-        for (int i = 0; i < num_waypoints; i++) {
-            Point p = waypoints[i];
-            g.fillRect(p.x * RECT_SIZE + RECT_SIZE / 4, p.y * RECT_SIZE + RECT_SIZE / 4, RECT_SIZE / 2, RECT_SIZE / 2);
+        //only the tiles in view
+        int tile_size = TILE * cell_size;
+        int first_tx = floorDiv(view_x, tile_size);
+        int first_ty = floorDiv(view_y, tile_size);
+        int last_tx = floorDiv(view_x + getWidth(), tile_size);
+        int last_ty = floorDiv(view_y + getHeight(), tile_size);
+        for (int ty = first_ty; ty <= last_ty; ty++) {
+            for (int tx = first_tx; tx <= last_tx; tx++) {
+                long key = key(tx, ty);
+                if (!obstacles.containsKey(key) && !waypoints.containsKey(key)) {
+                    continue;
+                }
+                BufferedImage image = tile_images.get(key);
+                if (image == null) {
+                    image = renderTile(key);
+                    tile_images.put(key, image);
+                }
+                g.drawImage(image, tx * tile_size - view_x, ty * tile_size - view_y, null);
+            }
         }
 
         if (path != null) {
@@ -65,29 +171,202 @@ public class MyPanel extends javax.swing.JPanel {
             Point current = new Point(initialX, initialY);
             g.setColor(Color.magenta);
             for (int i = 0; i < path.length; i++) {
-                g.drawLine(current.x * RECT_SIZE + RECT_SIZE / 2, current.y * RECT_SIZE + RECT_SIZE / 2, path[i].x * RECT_SIZE + RECT_SIZE / 2, path[i].y * RECT_SIZE + RECT_SIZE / 2);
-                //g.setColor(Color.green);
-                g.fillRect(current.x * RECT_SIZE, current.y * RECT_SIZE, RECT_SIZE, RECT_SIZE);
-                g.setColor(Color.magenta);
+                g.drawLine(screenX(current.x) + cell_size / 2, screenY(current.y) + cell_size / 2, screenX(path[i].x) + cell_size / 2, screenY(path[i].y) + cell_size / 2);
+                g.fillRect(screenX(current.x), screenY(current.y), cell_size, cell_size);
                 current = path[i];
             }
         }
         g.setColor(Color.black);
-        g.fillRect((initialX*10), (initialY*10) ,RECT_SIZE, RECT_SIZE);
-        g.fillRect((finalX*10), (finalY*10), RECT_SIZE, RECT_SIZE);
+        g.fillRect(screenX(initialX), screenY(initialY), cell_size, cell_size);
+        g.fillRect(screenX(finalX), screenY(finalY), cell_size, cell_size);
+
+        if (status != null && running != null) {
+            g.drawString(status + " " + (System.currentTimeMillis() - status_since) / 1000 + "s", 5, 15);
+        } else if (status != null) {
+            g.drawString(status, 5, 15);
+        }
     }
 
+    /**
+     * Draws the obstacles and waypoints of a tile into a new image.
+     */
+    private BufferedImage renderTile(long key) {
+        BufferedImage image = new BufferedImage(TILE * cell_size, TILE * cell_size, BufferedImage.TYPE_INT_ARGB);
+        Graphics g = image.getGraphics();
+        long[] bits = obstacles.get(key);
+        if (bits != null) {
+            g.setColor(Color.red);
+            for (int row = 0; row < TILE; row++) {
+                for (long word = bits[row]; word != 0; word &= word - 1) {
+                    int column = Long.numberOfTrailingZeros(word);
+                    g.fillRect(column * cell_size, row * cell_size, cell_size, cell_size);
+                }
+            }
+        }
+        bits = waypoints.get(key);
+        if (bits != null) {
+            g.setColor(Color.blue);
+            int size = Math.max(1, cell_size / 2);
+            for (int row = 0; row < TILE; row++) {
+                for (long word = bits[row]; word != 0; word &= word - 1) {
+                    int column = Long.numberOfTrailingZeros(word);
+                    g.fillRect(column * cell_size + cell_size / 4, row * cell_size + cell_size / 4, size, size);
+                }
+            }
+        }
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * Builds the graph and finds the path in the background. The panel shows
+     * the progress and picks up the result when it's done, unless the map
+     * was edited in the meantime. Only one build runs at a time: if an older
+     * one is still winding down, this one starts as soon as it's gone.
+     */
     public void path() {
-        GraphBuilder g = new GraphBuilder(getWidth() / RECT_SIZE, getHeight() / RECT_SIZE);
-        for (Point p : obstacles) {
-            g.addObstacle(p);
-        }
-        g.buildMatrix();
-        //path = g.getPath(new Point(0, 0), new Point(getWidth() / RECT_SIZE - 1, getHeight() / RECT_SIZE - 1));
-        path = g.getPath(new Point(initialX, initialY), new Point(finalX, finalY));
-        System.out.println(Arrays.toString(path));
-        waypoints = g.getWayPoints();
-        num_waypoints = g.num_waypoints();
+        if (worker != null) {
+            worker.cancel(true);
+            worker = null;
+        }
+        if (running != null) {
+            path_pending = true;
+            status_since = System.currentTimeMillis();
+            setStatus("Stopping the last search...");
+            return;
+        }
+        HashMap<Long, long[]> snapshot = new HashMap<>();
+        for (Map.Entry<Long, long[]> entry : obstacles.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().clone());
+        }
+        //the graph covers the default view and every obstacle
+        int length = Math.max(Math.max(getWidth() / RECT_SIZE, max_x + 2), Math.max(initialX, finalX) + 1);
+        int height = Math.max(Math.max(getHeight() / RECT_SIZE, max_y + 2), Math.max(initialY, finalY) + 1);
+        worker = new PathWorker(snapshot, length, height, map_version);
+        running = worker;
+        status_since = System.currentTimeMillis();
+        setStatus("Adding obstacles...");
+        ticker.start();
+        worker.execute();
+    }
+
+    private void setStatus(String status) {
+        this.status = status;
+        repaint();
+    }
+
+    /**
+     * Called once a worker's background work is really over, cancelled or
+     * not, to start the build that was waiting for it.
+     */
+    private void workerStopped(PathWorker stopped) {
+        if (running != stopped) {
+            return;
+        }
+        running = null;
+        if (path_pending) {
+            path_pending = false;
+            path();
+        } else if (worker == null) {
+            ticker.stop();
+        }
+    }
+
+    private class PathWorker extends SwingWorker<Point[], String> {
+
+        private final HashMap<Long, long[]> snapshot;
+        private final int length;
+        private final int height;
+        private final int version;
+        private HashMap<Long, long[]> found_waypoints;
+
+        PathWorker(HashMap<Long, long[]> snapshot, int length, int height, int version) {
+            this.snapshot = snapshot;
+            this.length = length;
+            this.height = height;
+            this.version = version;
+        }
+
+        @Override
+        protected Point[] doInBackground() {
+            try {
+                return findPath();
+            } finally {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        workerStopped(PathWorker.this);
+                    }
+                });
+            }
+        }
+
+        private Point[] findPath() {
+            GraphBuilder g = new GraphBuilder(length, height);
+            int done = 0;
+            for (Map.Entry<Long, long[]> entry : snapshot.entrySet()) {
+                int tx = (int) (entry.getKey() >> 32);
+                int ty = (int) (long) entry.getKey();
+                long[] bits = entry.getValue();
+                for (int row = 0; row < TILE; row++) {
+                    for (long word = bits[row]; word != 0; word &= word - 1) {
+                        g.addObstacle(new Point(tx * TILE + Long.numberOfTrailingZeros(word), ty * TILE + row));
+                    }
+                }
+                if (isCancelled()) {
+                    return null;
+                }
+                publish("Adding obstacles... " + (++done * 100 / snapshot.size()) + "%");
+            }
+            //the build and search can't report how far along they are, so
+            //the status just shows how long they have been going
+            publish("Building the graph...");
+            g.buildMatrix();
+            if (isCancelled()) {
+                return null;
+            }
+            found_waypoints = new HashMap<>();
+            for (int i = 0; i < g.num_waypoints(); i++) {
+                Point p = g.getWaypoint(i);
+                set(found_waypoints, p.x, p.y, true);
+            }
+            if (isCancelled()) {
+                return null;
+            }
+            publish("Searching...");
+            return g.getPath(new Point(initialX, initialY), new Point(finalX, finalY));
+        }
+
+        @Override
+        protected void process(List<String> phases) {
+            //a cancelled worker can still report progress
+            if (worker == this) {
+                setStatus(phases.get(phases.size() - 1));
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (worker != this) {
+                return;
+            }
+            worker = null;
+            status = null;
+            if (running == null) {
+                ticker.stop();
+            }
+            if (!isCancelled() && version == map_version) {
+                try {
+                    path = get();
+                    waypoints = found_waypoints;
+                    tile_images.clear();
+                    System.out.println(Arrays.toString(path));
+                } catch (InterruptedException | ExecutionException ex) {
+                    status = "Couldn't find a path: " + ex.getCause();
+                }
+            }
+            repaint();
+        }
     }
 
     /**
@@ -123,31 +402,91 @@ public class MyPanel extends javax.swing.JPanel {
     }// </editor-fold>//GEN-END:initComponents
 
     private void formMouseClicked(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_formMouseClicked
+        if (!SwingUtilities.isLeftMouseButton(evt)) {
+            return;
+        }
         last_x = evt.getX();
         last_y = evt.getY();
-        int x = ((int) (evt.getX() / RECT_SIZE + 0.5));
-        int y = ((int) (evt.getY() / RECT_SIZE + 0.5));
-        Point p = new Point(x, y);
-        if (obstacles.contains(p)) {
-            obstacles.remove(p);
-        } else {
-            obstacles.add(p);
+        int x = floorDiv(evt.getX() + view_x, cell_size);
+        int y = floorDiv(evt.getY() + view_y, cell_size);
+        if (x < 0 || y < 0) {
+            return;
+        }
+        boolean obstacle = !get(obstacles, x, y);
+        set(obstacles, x, y, obstacle);
+        if (obstacle) {
+            max_x = Math.max(max_x, x);
+            max_y = Math.max(max_y, y);
         }
+        map_version++;
         path = null;
-        num_waypoints = 0;
+        if (!waypoints.isEmpty()) {
+            waypoints = new HashMap<>();
+            tile_images.clear();
+        } else {
+            tile_images.remove(key(floorDiv(x, TILE), floorDiv(y, TILE)));
+        }
         repaint();
     }//GEN-LAST:event_formMouseClicked
 
     private void formMouseDragged(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_formMouseDragged
-        if (Math.abs(evt.getX() - last_x) > RECT_SIZE || Math.abs(evt.getY() - last_y) > RECT_SIZE) {
+        if (Math.abs(evt.getX() - last_x) > cell_size || Math.abs(evt.getY() - last_y) > cell_size) {
             formMouseClicked(evt);
         }
     }//GEN-LAST:event_formMouseDragged
 
     public void reset() {
+        if (worker != null) {
+            worker.cancel(true);
+            worker = null;
+        }
+        path_pending = false;
+        status = null;
         path = null;
-        num_waypoints = 0;
-        obstacles = new ArrayList<>();
+        obstacles = new HashMap<>();
+        waypoints = new HashMap<>();
+        max_x = 0;
+        max_y = 0;
+        map_version++;
+        tile_images.clear();
+    }
+
+    private int screenX(int x) {
+        return x * cell_size - view_x;
+    }
+
+    private int screenY(int y) {
+        return y * cell_size - view_y;
+    }
+
+    private static long key(int tx, int ty) {
+        return ((long) tx << 32) | (ty & 0xffffffffL);
+    }
+
+    private static boolean get(HashMap<Long, long[]> tiles, int x, int y) {
+        long[] bits = tiles.get(key(floorDiv(x, TILE), floorDiv(y, TILE)));
+        return bits != null && (bits[y & (TILE - 1)] >>> x & 1) != 0;
+    }
+
+    private static void set(HashMap<Long, long[]> tiles, int x, int y, boolean value) {
+        long key = key(floorDiv(x, TILE), floorDiv(y, TILE));
+        long[] bits = tiles.get(key);
+        if (bits == null) {
+            if (!value) {
+                return;
+            }
+            bits = new long[TILE];
+            tiles.put(key, bits);
+        }
+        if (value) {
+            bits[y & (TILE - 1)] |= 1L << x;
+        } else {
+            bits[y & (TILE - 1)] &= ~(1L << x);
+        }
+    }
+
+    private static int floorDiv(int a, int b) {
+        return a >= 0 ? a / b : -((-a + b - 1) / b);
     }
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
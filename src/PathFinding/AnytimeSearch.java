@@ -0,0 +1,228 @@
+package PathFinding;
+
+import java.util.Arrays;
+
+/**
+ * Anytime version of GraphBuilder.getPath(), using ARA*. The first path comes
+ * from a search with a heavily inflated heuristic, which is fast but may be
+ * far from optimal. Each further pass lowers the inflation and only revisits
+ * the vertices whose costs improved in the previous pass, until it reaches 1
+ * and the path is optimal.
+ *
+ * improve() can be called as many times as wanted with a new deadline, and
+ * picks up where it stopped. The graph must not change while a search is in
+ * use.
+ *
+ * @author amauryesparza
+ */
+public class AnytimeSearch {
+
+    public static double initial_inflation = 3.0;
+    public static double inflation_step = 0.5; //anything but a positive step goes straight to 1
+
+    private static final int START = QueryGraph.START;
+    private static final int GOAL = QueryGraph.GOAL;
+    private static final double INFINITY = Double.POSITIVE_INFINITY;
+
+    private final GraphBuilder graph;
+    private final QueryGraph query;
+    private final int size;
+
+    private final double[] g_costs;
+    private final int[] min_index; //the vertex's lowest cost neighbor
+    private final double[] keys; //the key each vertex is queued with
+    private final boolean[] isInOpenSet;
+    private final boolean[] closed_set;
+    private final boolean[] inconsistent; //improved after being closed this pass
+    private IntDoubleHeap to_evaluate;
+
+    private double inflation;
+    private final double step; //inflation_step as of when the search was made
+    private boolean optimal;
+    private boolean checked_reachability;
+
+    private Point[] best_path;
+    private double best_cost;
+    private double bound;
+    private PathListener listener;
+
+    public AnytimeSearch(GraphBuilder graph, Point start, Point finish) {
+        this.graph = graph;
+        query = new QueryGraph(graph, start, finish);
+        size = query.size();
+        g_costs = new double[size];
+        min_index = new int[size];
+        keys = new double[size];
+        isInOpenSet = new boolean[size];
+        closed_set = new boolean[size];
+        inconsistent = new boolean[size];
+        Arrays.fill(g_costs, INFINITY);
+        to_evaluate = new IntDoubleHeap(size);
+
+        inflation = initial_inflation > 1 ? initial_inflation : 1;
+        step = inflation_step > 0 ? inflation_step : inflation;
+        best_cost = INFINITY;
+        bound = INFINITY;
+        g_costs[START] = 0;
+        insert(START);
+    }
+
+    /**
+     * @param listener told about every improvement from now on, or null
+     */
+    public void setListener(PathListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Keeps searching until the path is optimal or the deadline passes.
+     *
+     * @param deadline in terms of System.nanoTime()
+     * @return true if the search is done. getBestPath() is then the optimal
+     * path, or null if there is no path. False if the deadline passed first.
+     */
+    public boolean improve(long deadline) {
+        if (!checked_reachability) {
+            checked_reachability = true;
+            if (!graph.isReachable(query.point(START), query.point(GOAL))) { //no need to search
+                optimal = true;
+                return true;
+            }
+        }
+        while (!optimal) {
+            if (!improvePath(deadline)) {
+                return false;
+            }
+            double lower = INFINITY; //lowest possible cost of any path
+            for (int v = 0; v < size; v++) {
+                if (isInOpenSet[v] || inconsistent[v]) {
+                    lower = Math.min(lower, g_costs[v] + query.heuristic(v, GOAL));
+                }
+            }
+            if (g_costs[GOAL] < INFINITY) {
+                double found_bound = Math.max(1, Math.min(inflation, g_costs[GOAL] / lower));
+                if (g_costs[GOAL] < best_cost || found_bound < bound) {
+                    best_path = path();
+                    best_cost = g_costs[GOAL];
+                    bound = found_bound;
+                    if (listener != null) {
+                        listener.pathImproved(best_path, bound);
+                    }
+                }
+            }
+            if (inflation <= 1 || bound <= 1) {
+                optimal = true;
+                bound = best_path == null ? INFINITY : 1;
+                return true;
+            }
+
+            //start the next pass from everything that is still open or was
+            //improved after being closed
+            inflation = Math.max(1, inflation - step);
+            to_evaluate = new IntDoubleHeap(size);
+            for (int v = 0; v < size; v++) {
+                closed_set[v] = false;
+                if (isInOpenSet[v] || inconsistent[v]) {
+                    inconsistent[v] = false;
+                    insert(v);
+                }
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the best path found so far, or null if none was found yet.
+     */
+    public Point[] getBestPath() {
+        return best_path;
+    }
+
+    /**
+     * @return how much longer than the optimum the best path can be at most,
+     * as a factor, or infinity if there is no path yet.
+     */
+    public double getBound() {
+        return bound;
+    }
+
+    /**
+     * @return true once the search is done, in which case getBestPath() is
+     * optimal, or null if there is no path.
+     */
+    public boolean isOptimal() {
+        return optimal;
+    }
+
+    /**
+     * One pass of weighted A* at the current inflation.
+     *
+     * @return false if the deadline passed first.
+     */
+    private boolean improvePath(long deadline) {
+        while (!to_evaluate.isEmpty()) {
+            int current = to_evaluate.peek();
+            if (!isInOpenSet[current] || to_evaluate.peekCost() != keys[current]) { //stale entry
+                to_evaluate.pop();
+                continue;
+            }
+            if (g_costs[GOAL] <= keys[current]) {
+                return true;
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            to_evaluate.pop();
+            isInOpenSet[current] = false;
+            closed_set[current] = true;
+            Point from = query.point(current);
+            for (int i = GOAL; i < size; i++) { //nothing improves on the start
+                if (i == current) {
+                    continue;
+                }
+                if ((i & 15) == 0 && System.nanoTime() - deadline >= 0) {
+                    insert(current); //the relaxations so far still hold, redo the rest later
+                    closed_set[current] = false;
+                    return false;
+                }
+                //the edge cost is the Manhattan distance if it exists at all,
+                //so only look for it when that could be an improvement
+                Point to = query.point(i);
+                double cost = g_costs[current] + Math.abs(from.x - to.x) + Math.abs(from.y - to.y);
+                if (cost < g_costs[i] && query.cost(current, i) >= 0) {
+                    g_costs[i] = cost;
+                    min_index[i] = current;
+                    if (!closed_set[i]) {
+                        insert(i);
+                    } else {
+                        inconsistent[i] = true;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private void insert(int v) {
+        keys[v] = g_costs[v] + inflation * query.heuristic(v, GOAL);
+        isInOpenSet[v] = true;
+        to_evaluate.add(v, keys[v]);
+    }
+
+    private Point[] path() {
+        int length = 0;
+        for (int current = GOAL; current != START; current = min_index[current]) {
+            length++;
+        }
+        Point[] final_path = new Point[length];
+        int current = GOAL;
+        for (int i = length - 1; i >= 0; i--) {
+            final_path[i] = query.point(current);
+            current = min_index[current];
+        }
+        return final_path;
+    }
+}
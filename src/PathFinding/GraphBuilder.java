@@ -1,6 +1,10 @@
 package PathFinding;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * The backbone, arms, legs, and spleen of the pathfinder. This is responsible
@@ -9,15 +13,20 @@ import java.util.Arrays;
  *
  * @author amauryesparza
  */
-public class GraphBuilder {
+public class GraphBuilder implements ObstacleGrid {
 
-    private final Point[] waypoints;
-    private int waypoint_index;
+    //The waypoints and adjacency matrix for each agent radius, layers[0]
+    //being the usual ones
+    private final Layer[] layers;
 
-    private final Point[] obstacles;
+    private Point[] obstacles;
     private int obstacle_index;
 
-    private final boolean[] insideCorners;
+    //Reduced graph mode: which diagonals each waypoint is a corner of, one
+    //bit per diagonal plus INSIDE_CORNER. Waypoints with no bits left are
+    //dropped.
+    private boolean reduced;
+    private static final int INSIDE_CORNER = 16;
 
     private int last_object_index;
 
@@ -26,27 +35,91 @@ public class GraphBuilder {
 
     private final int[][] map;
 
+    //The obstacles again, one bit per cell. occupancy[y] holds row y, with x
+    //running along the bits of consecutive words.
+    private final long[][] occupancy;
+    private final int words;
+
+    //Corner detection works on tiles of TILE_ROWS rows by TILE_WORDS words.
+    //Only tiles around new obstacles are scanned by buildMatrix().
+    private static final int TILE_ROWS = 64;
+    private static final int TILE_WORDS = 16;
+    private final int tiles_wide;
+    private final boolean[] dirty_tiles;
+
+    static final ForkJoinPool pool = new ForkJoinPool();
+
+    private final ReachabilityIndex reachability;
+
+    //Clearance mode, for agents bigger than a cell. clearance[x][y] is how
+    //many free rings there are around the cell before an obstacle or the
+    //edge of the map, up to max_radius, or -1 on an obstacle. inflated[r - 1]
+    //holds, like occupancy, the cells with less clearance than r.
+    private final int max_radius;
+    private byte[][] clearance;
+    private byte[][] row_clearance; //clearance along the row only
+    private long[][][] inflated;
+    private boolean[] changed_rows;
+
+    //Initial capacities, the arrays grow as needed
     public static int MAX_OBSTACLES = 2000;
     public static int MAX_WAYPOINTS = 4000;
 
     public static double octile_constant = .41421356237;
     public static final double octile_multiplier = 1.6;
 
-    private int[][] adj_matrix;
+    private final ArrayList<GraphListener> listeners = new ArrayList<>();
 
     public GraphBuilder(int length, int height) {
+        this(length, height, 0);
+    }
+
+    /**
+     * Makes a graph that can also serve agents bigger than a single cell. An
+     * agent of radius r covers the (2r + 1) x (2r + 1) square around its
+     * cell, so a 2x2 or 3x3 unit has radius 1. Each radius up to max_radius
+     * gets its own waypoints, the corners of the obstacles grown by that
+     * radius, with its own adjacency matrix. On top of the usual graph that
+     * costs two bytes per cell for the clearance, two bits per cell for each
+     * radius, and a matrix per radius of the square of its waypoint count.
+     *
+     * @param length the size of the map along x
+     * @param height the size of the map along y
+     * @param max_radius the biggest agent radius getAgentPath() will be asked
+     * for, at most 126
+     * @throws IllegalArgumentException if max_radius is outside 0..126
+     */
+    public GraphBuilder(int length, int height, int max_radius) {
+        if (max_radius < 0 || max_radius > 126) { //clearance is stored in bytes, up to max_radius + 1
+            throw new IllegalArgumentException("max_radius " + max_radius + " is outside 0..126");
+        }
         this.length = length;
         this.height = height;
-        waypoints = new Point[MAX_WAYPOINTS];
-        waypoint_index = 0;
+        this.max_radius = max_radius;
 
         obstacles = new Point[MAX_OBSTACLES];
         obstacle_index = 0;
 
-        insideCorners = new boolean[MAX_WAYPOINTS];
-
         map = new int[length][height];
 
+        words = (length + 63) >> 6;
+        occupancy = new long[height][words];
+        tiles_wide = (words + TILE_WORDS - 1) / TILE_WORDS;
+        dirty_tiles = new boolean[tiles_wide * ((height + TILE_ROWS - 1) / TILE_ROWS)];
+        reachability = new ReachabilityIndex(occupancy, length, height);
+
+        if (max_radius > 0) {
+            clearance = new byte[length][height];
+            row_clearance = new byte[length][height];
+            inflated = new long[max_radius][height][words];
+            changed_rows = new boolean[height];
+            Arrays.fill(changed_rows, true); //the edges of the map count too
+        }
+        layers = new Layer[max_radius + 1];
+        for (int r = 0; r <= max_radius; r++) {
+            layers[r] = new Layer(r, r == 0 ? occupancy : inflated[r - 1]);
+        }
+
         last_object_index = 0;
     }
 
@@ -60,38 +133,103 @@ public class GraphBuilder {
             return;
         }
         map[p.x][p.y] = 1;
+        occupancy[p.y][p.x >> 6] |= 1L << p.x;
+        reachability.markDirty(p.x, p.y);
+        //Corners can only change within a cell of the obstacle, or within a
+        //cell of where the clearance changed for the bigger radii, which is
+        //up to max_radius away.
+        int reach = max_radius + 1;
+        int first_tile_x = (Math.max(p.x - reach, 0) >> 6) / TILE_WORDS;
+        int last_tile_x = (Math.min(p.x + reach, length - 1) >> 6) / TILE_WORDS;
+        int first_tile_y = Math.max(p.y - reach, 0) / TILE_ROWS;
+        int last_tile_y = Math.min(p.y + reach, height - 1) / TILE_ROWS;
+        for (int j = first_tile_y; j <= last_tile_y; j++) {
+            for (int k = first_tile_x; k <= last_tile_x; k++) {
+                dirty_tiles[j * tiles_wide + k] = true;
+            }
+        }
+        if (max_radius > 0) {
+            changed_rows[p.y] = true;
+        }
+        if (obstacle_index == obstacles.length) {
+            obstacles = Arrays.copyOf(obstacles, obstacles.length * 2);
+        }
         obstacles[obstacle_index] = p;
         obstacle_index++;
     }
 
     /**
-     * @param a the index of the first waypoint to check
-     * @param b the index of the second waypoint to check
-     * @return true if the waypoint a is visible to waypoint b, false otherwise.
+     * Turns the reduced visibility graph on or off. In the reduced graph, an
+     * edge at an outside corner is only kept if it runs along the obstacle
+     * instead of cutting into it or away from it, i.e. if a path could wrap
+     * around the corner there. Waypoints that are no longer a corner of
+     * anything, because of obstacles added later, are dropped. Shortest
+     * paths only ever bend around corners, so they stay in the graph, with a
+     * fraction of the edges.
+     *
+     * @param reduced true to use the reduced graph
      */
-    private boolean isVisible(int a, int b) {
-        if (adj_matrix[a][b] == -1) {
-            return false;
+    public void setReduced(boolean reduced) {
+        this.reduced = reduced;
+        for (Layer layer : layers) {
+            if (reduced) {
+                layer.updateCornerMasks();
+            }
+            if (layer.adj_matrix != null) {
+                layer.adj_matrix = new int[layer.adj_matrix.length][layer.adj_matrix.length];
+            }
         }
-        if (adj_matrix[a][b] > 0) {
-            return true;
-        }
-        Point p1 = waypoints[a];
-        Point p2 = waypoints[b];
-        
-        if (bresenham(p1, p2) || (Math.abs(p1.x - p2.x) == 1 && Math.abs(p1.y - p2.y) == 1)) {
-            int distance = manhattan(waypoints[a], waypoints[b]);
-            adj_matrix[a][b] = distance;
-            adj_matrix[b][a] = distance;
-            return true;
-        } else {
-            adj_matrix[a][b] = -1;
-            adj_matrix[b][a] = -1;
+    }
+
+    /**
+     * @return true if an agent of the given radius can't stand at the
+     * position. Anything off the map counts as free, like in corner
+     * detection.
+     */
+    private boolean isBlocked(int x, int y, int radius) {
+        if (!isValid(x, y)) {
+            return false;
         }
-        return false;
+        return radius == 0 ? map[x][y] == 1 : clearance[x][y] < radius;
+    }
+
+    /**
+     * @param a the index of the first waypoint
+     * @param b the index of the second waypoint
+     * @return the cost of the edge between the waypoints, or -1 if they can't
+     * see each other.
+     */
+    int edge(int a, int b) {
+        return layers[0].edge(a, b);
     }
 
     public boolean bresenham(Point p1, Point p2) {
+        return bresenham(this, p1, p2);
+    }
+
+    /**
+     * @param x x-coordinate
+     * @param y y-coordinate
+     * @return true if an obstacle was added at the position.
+     */
+    @Override
+    public boolean isObstacle(int x, int y) {
+        return map[x][y] == 1;
+    }
+
+    /**
+     * @return true if two points can see each other. Besides a clear line,
+     * diagonal neighbours always can, squeezing between the corners of two
+     * obstacles.
+     */
+    static boolean canSee(ObstacleGrid grid, Point p1, Point p2) {
+        return bresenham(grid, p1, p2) || (Math.abs(p1.x - p2.x) == 1 && Math.abs(p1.y - p2.y) == 1);
+    }
+
+    /**
+     * @return true if no cell on the line between the points is an obstacle.
+     */
+    static boolean bresenham(ObstacleGrid grid, Point p1, Point p2) {
         int x1 = p1.x;
         int y1 = p1.y;
         int x2 = p2.x;
@@ -102,7 +240,7 @@ public class GraphBuilder {
         int sy = (y1 < y2) ? 1 : -1;
         int err = dx - dy;
         while (true) {
-            if (map[x1][y1] == 1) {
+            if (grid.isObstacle(x1, y1)) {
                 return false;
             }
             if (x1 == x2 && y1 == y2) {
@@ -113,9 +251,9 @@ public class GraphBuilder {
                 err = err - dy;
                 x1 = x1 + sx;
             }
-            if (map[x1][y1] == 1) {
+            if (grid.isObstacle(x1, y1)) {
                 return false;
-            }           
+            }
             if (x1 == x2 && y1 == y2) {
                 break;
             }
@@ -127,6 +265,41 @@ public class GraphBuilder {
         return true;
     }
 
+    /**
+     * Walks the same cells as bresenham().
+     *
+     * @return the lowest clearance along the line.
+     */
+    private byte lineClearance(Point p1, Point p2) {
+        int x1 = p1.x;
+        int y1 = p1.y;
+        int x2 = p2.x;
+        int y2 = p2.y;
+        int dx = Math.abs(x2 - x1);
+        int dy = Math.abs(y2 - y1);
+        int sx = (x1 < x2) ? 1 : -1;
+        int sy = (y1 < y2) ? 1 : -1;
+        int err = dx - dy;
+        byte min = clearance[x1][y1];
+        while (!(x1 == x2 && y1 == y2)) {
+            int e2 = err << 1;
+            if (e2 > -dy) {
+                err = err - dy;
+                x1 = x1 + sx;
+            }
+            min = (byte) Math.min(min, clearance[x1][y1]);
+            if (x1 == x2 && y1 == y2) {
+                break;
+            }
+            if (e2 < dx) {
+                err = err + dx;
+                y1 = y1 + sy;
+            }
+            min = (byte) Math.min(min, clearance[x1][y1]);
+        }
+        return min;
+    }
+
     /**
      * Finds the Manhattan distance between the two given points.
      *
@@ -159,74 +332,515 @@ public class GraphBuilder {
      * before updating.
      */
     public void buildMatrix() {
-        for (int i = last_object_index; i < obstacle_index; i++) {
-            int x = obstacles[i].x;
-            int y = obstacles[i].y;
-            for (int j = -1; j <= 1; j++) {
-                for (int k = -1; k <= 1; k++) {
-                    int temp_x = x + j;
-                    int temp_y = y + k;
-                    if (isValid(temp_x, temp_y) && map[temp_x][temp_y] == 0) {
-                        if (isOutsideCorner(temp_x, temp_y)) {
-                            map[temp_x][temp_y] = 2;
-                            waypoints[waypoint_index] = new Point(temp_x, temp_y);
-                            waypoint_index++;
-                        } else if (isInsideCorner(temp_x, temp_y)) {
-                            map[temp_x][temp_y] = 2;
-                            insideCorners[waypoint_index] = true;
-                            waypoints[waypoint_index] = new Point(temp_x, temp_y);
-                            waypoint_index++;
-                        }
-                    }
-                }
+        int first_obstacle = last_object_index;
+        int first_waypoint = layers[0].waypoint_index;
+        findWaypoints();
+        reachability.refresh();
+        for (Layer layer : layers) {
+            if (reduced) {
+                layer.updateCornerMasks();
             }
+            layer.adj_matrix = new int[layer.waypoint_index + 2][layer.waypoint_index + 2];
         }
         last_object_index = obstacle_index;
-        adj_matrix = new int[waypoint_index + 2][waypoint_index + 2];
+        for (GraphListener listener : listeners) {
+            listener.graphChanged(this, first_obstacle, first_waypoint);
+        }
     }
 
-    private boolean isOutsideCorner(int x, int y) {
-        if (x > 0 && y > 0 && map[x - 1][y - 1] == 1) {
-            if (map[x - 1][y] != 1 && map[x][y - 1] != 1) {
-                return true;
+    /**
+     * The first half of buildMatrix(): scans the tiles around new obstacles
+     * and adds the corners found as waypoints, without touching the adjacency
+     * matrix. For callers that keep their own visibility cache, like
+     * VersionedGraph.
+     */
+    void findWaypoints() {
+        int count = 0;
+        for (boolean dirty : dirty_tiles) {
+            if (dirty) {
+                count++;
             }
         }
-        if (x + 1 < length && y > 0 && map[x + 1][y - 1] == 1) {
-            if (map[x + 1][y] != 1 && map[x][y - 1] != 1) {
-                return true;
+        int[] tiles = new int[count];
+        count = 0;
+        for (int i = 0; i < dirty_tiles.length; i++) {
+            if (dirty_tiles[i]) {
+                tiles[count++] = i;
+                dirty_tiles[i] = false;
             }
         }
-        if (x + 1 < length && y + 1 < height && map[x + 1][y + 1] == 1) {
-            if (map[x + 1][y] != 1 && map[x][y + 1] != 1) {
-                return true;
-            }
+        if (max_radius > 0) {
+            updateClearance();
         }
-        if (x > 0 && y + 1 < height && map[x - 1][y + 1] == 1) {
-            if (map[x - 1][y] != 1 && map[x][y + 1] != 1) {
-                return true;
+        //tiles are merged in order, so waypoints come out in the same order
+        //no matter how the scan was split up
+        for (Layer layer : layers) {
+            for (long corner : pool.invoke(new CornerScan(layer.grid, tiles, 0, tiles.length))) {
+                layer.add(corner);
             }
         }
-        return false;
     }
 
-    private boolean isInsideCorner(int x, int y) {
-        if (isValid(x, y - 1) && map[x][y - 1] == 1) {
-            if (isValid(x + 1, y) && map[x + 1][y] == 1 && map[x + 1][y - 1] != 1) {
+    /**
+     * Registers a listener to be told about every buildMatrix().
+     *
+     * @param listener the listener to add
+     */
+    public void addListener(GraphListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(GraphListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * The waypoints of one agent radius, the corners of the obstacles grown
+     * by that radius, with their own adjacency matrix. Keeping the radii
+     * apart means the matrices only grow with the square of each radius's
+     * waypoint count, not of all of them together.
+     */
+    private class Layer {
+
+        private final int radius;
+        private final long[][] grid; //the cells the agent can't stand on, like occupancy
+        private final long[][] marked; //the cells that are already waypoints
+
+        private Point[] waypoints;
+        private int waypoint_index;
+        private boolean[] insideCorners;
+        private byte[] corner_masks;
+        private int[][] adj_matrix;
+
+        Layer(int radius, long[][] grid) {
+            this.radius = radius;
+            this.grid = grid;
+            marked = new long[height][words];
+            waypoints = new Point[MAX_WAYPOINTS];
+            waypoint_index = 0;
+            insideCorners = new boolean[MAX_WAYPOINTS];
+        }
+
+        /**
+         * Adds a corner found by scanTile() as a waypoint, unless it already
+         * is one.
+         */
+        private void add(long corner) {
+            int x = (int) corner >>> 1;
+            int y = (int) (corner >>> 32);
+            if ((marked[y][x >> 6] >>> x & 1) != 0) { //already a waypoint
+                return;
+            }
+            if (waypoint_index + 2 >= waypoints.length) { //leave room for getPath
+                waypoints = Arrays.copyOf(waypoints, waypoints.length * 2);
+                insideCorners = Arrays.copyOf(insideCorners, waypoints.length);
+            }
+            marked[y][x >> 6] |= 1L << x;
+            insideCorners[waypoint_index] = (corner & 1) != 0;
+            waypoints[waypoint_index] = new Point(x, y);
+            waypoint_index++;
+        }
+
+        /**
+         * @param a the index of the first waypoint to check
+         * @param b the index of the second waypoint to check
+         * @return true if the waypoint a is visible to waypoint b, false
+         * otherwise. For agents bigger than a cell, the whole line needs the
+         * agent's clearance.
+         */
+        private boolean isVisible(int a, int b) {
+            if (adj_matrix[a][b] == -1) {
+                return false;
+            }
+            if (adj_matrix[a][b] > 0) {
                 return true;
             }
-            if (isValid(x - 1, y) && map[x - 1][y] == 1 && map[x - 1][y - 1] != 1) {
+            Point p1 = waypoints[a];
+            Point p2 = waypoints[b];
+            if (reduced && !(isTaut(a, p2) && isTaut(b, p1))) {
+                adj_matrix[a][b] = -1;
+                adj_matrix[b][a] = -1;
+                return false;
+            }
+
+            //the line can be walked either way, and squeezing between two
+            //diagonal obstacles only fits a point
+            if (radius == 0 ? canSee(GraphBuilder.this, p1, p2)
+                    : Math.min(lineClearance(p1, p2), lineClearance(p2, p1)) >= radius) {
+                int distance = manhattan(waypoints[a], waypoints[b]);
+                adj_matrix[a][b] = distance;
+                adj_matrix[b][a] = distance;
                 return true;
+            } else {
+                adj_matrix[a][b] = -1;
+                adj_matrix[b][a] = -1;
+            }
+            return false;
+        }
+
+        private int edge(int a, int b) {
+            return isVisible(a, b) ? adj_matrix[a][b] : -1;
+        }
+
+        private void updateCornerMasks() {
+            corner_masks = new byte[waypoint_index];
+            for (int i = 0; i < waypoint_index; i++) {
+                int x = waypoints[i].x;
+                int y = waypoints[i].y;
+                if (isBlocked(x, y, radius)) {
+                    continue;
+                }
+                int mask = 0;
+                for (int d = 0; d < 4; d++) {
+                    int dx = (d & 1) * 2 - 1;
+                    int dy = (d >> 1) * 2 - 1;
+                    if (isBlocked(x + dx, y + dy, radius) && !isBlocked(x + dx, y, radius) && !isBlocked(x, y + dy, radius)) {
+                        mask |= 1 << d;
+                    }
+                    if (isBlocked(x, y + dy, radius) && isBlocked(x + dx, y, radius) && !isBlocked(x + dx, y + dy, radius)) {
+                        mask |= INSIDE_CORNER;
+                    }
+                }
+                corner_masks[i] = (byte) mask;
             }
         }
-        if (isValid(x, y + 1) && map[x][y + 1] == 1) {
-            if (isValid(x + 1, y) && map[x + 1][y] == 1 && map[x + 1][y + 1] != 1) {
+
+        /**
+         * @param a the index of a waypoint
+         * @param to the other end of the edge
+         * @return true if a path along the edge could bend around waypoint a.
+         * Inside corners are kept whole, they let paths squeeze between two
+         * diagonal obstacles. Anything that isn't a waypoint is always taut.
+         */
+        private boolean isTaut(int a, Point to) {
+            if (a >= corner_masks.length) {
                 return true;
             }
-            if (isValid(x - 1, y) && map[x - 1][y] == 1 && map[x - 1][y + 1] != 1) {
+            int mask = corner_masks[a];
+            if ((mask & INSIDE_CORNER) != 0) {
                 return true;
             }
+            Point p = waypoints[a];
+            int ex = Integer.signum(to.x - p.x);
+            int ey = Integer.signum(to.y - p.y);
+            for (int d = 0; d < 4; d++) {
+                if ((mask >> d & 1) == 0) {
+                    continue;
+                }
+                int dx = (d & 1) * 2 - 1;
+                int dy = (d >> 1) * 2 - 1;
+                //a line heading into the obstacle's quadrant or the opposite one
+                //cuts through the obstacle, any other line can wrap around it
+                if (!(ex == dx && ey == dy) && !(ex == -dx && ey == -dy)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Point[] search(Point start, Point finish) {
+            if (!reachability.connected(start, finish)) { //no need to search
+                return null;
+            }
+            waypoints[waypoint_index] = start;
+            waypoints[waypoint_index + 1] = finish;
+            waypoint_index += 2; //temporary index adjustment
+            int[] path = findPath(); //find the path
+            waypoint_index -= 2; //replace
+            if (path == null) { //if null, return null
+                return null;
+            }
+            Point[] final_path = new Point[path.length]; //convert the path from indices to positions
+            for (int i = 0; i < path.length; i++) {
+                final_path[i] = waypoints[path[i]];
+            }
+            final_path[path.length - 1] = finish;
+
+            return final_path;
+        }
+
+        private int[] findPath() {
+            //Zero out the old path values
+            int start = waypoint_index - 2;
+            int finish = waypoint_index - 1;
+            for (int i = 0; i < waypoint_index; i++) {
+                adj_matrix[start][i] = 0;
+                adj_matrix[i][start] = 0;
+                adj_matrix[finish][i] = 0;
+                adj_matrix[i][finish] = 0;
+            }
+
+            IntDoubleHeap to_evaluate = new IntDoubleHeap(waypoint_index); //Uses a simple heap as a priority queue
+            double[] f_costs = new double[adj_matrix.length]; //the minimum cost to get to a vertex
+            double[] g_costs = new double[adj_matrix.length];
+            int[] min_index = new int[adj_matrix.length]; //the vertex's lowest cost neighbor
+            boolean[] closed_set = new boolean[adj_matrix.length];
+            boolean[] isInOpenSet = new boolean[adj_matrix.length];
+
+            int count = 0;
+            int current;
+            to_evaluate.add(start, 0); //add the start to the queue
+            f_costs[start] = 0;
+            g_costs[start] = 0;
+
+            while (!to_evaluate.isEmpty()) { //evaluate until there are no more vertices to evaluate
+                count++;
+                current = to_evaluate.pop(); //pop the lowest f-cost
+                if (current == finish) { //if at the end, finish right now
+                    System.out.println(count);
+                    return cleanup(min_index, adj_matrix, finish, start);
+                }
+                closed_set[current] = true;
+                for (int i = 0; i < adj_matrix[current].length; i++) { //visit all neighbors
+                    if (!closed_set[i] && isVisible(i, current)) {
+                        double cost = adj_matrix[i][current] + g_costs[current]; //total cost to visit node i from current
+                        if (!isInOpenSet[i] || cost < g_costs[i]) {
+                            g_costs[i] = cost;
+                            f_costs[i] = cost + octile(waypoints[i], waypoints[finish]) * octile_multiplier; //uses octile search heuristic times two.
+                            min_index[i] = current;
+                            if (!isInOpenSet[i]) {
+                                to_evaluate.add(i, f_costs[i]);
+                                isInOpenSet[i] = true;
+                            }
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Finds the outside and inside corners of a range of tiles, splitting the
+     * range across the pool when it is big enough.
+     */
+    private class CornerScan extends RecursiveTask<long[]> {
+
+        private final long[][] grid;
+        private final int[] tiles;
+        private final int from;
+        private final int to;
+
+        CornerScan(long[][] grid, int[] tiles, int from, int to) {
+            this.grid = grid;
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (to - from <= 1) {
+                return from == to ? new long[0] : scanTile(grid, tiles[from]);
+            }
+            int middle = (from + to) >>> 1;
+            CornerScan right = new CornerScan(grid, tiles, middle, to);
+            right.fork();
+            long[] left = new CornerScan(grid, tiles, from, middle).compute();
+            long[] rest = right.join();
+            long[] both = Arrays.copyOf(left, left.length + rest.length);
+            System.arraycopy(rest, 0, both, left.length, rest.length);
+            return both;
+        }
+    }
+
+    /**
+     * Checks every free cell of a tile for corners, 64 cells at a time. A cell
+     * is an outside corner if a diagonal neighbour is an obstacle while the
+     * two cells between them are not, and an inside corner if two adjacent
+     * sides are obstacles while the diagonal between them is not. Cells off
+     * the map count as free.
+     *
+     * @param grid the obstacles, laid out like occupancy
+     * @param tile the index of the tile
+     * @return the corners found, in row-major order, packed as y in the high
+     * int, x shifted left by one and the inside corner flag in the low bit.
+     */
+    private long[] scanTile(long[][] grid, int tile) {
+        int first_row = (tile / tiles_wide) * TILE_ROWS;
+        int last_row = Math.min(first_row + TILE_ROWS, height);
+        int first_word = (tile % tiles_wide) * TILE_WORDS;
+        int last_word = Math.min(first_word + TILE_WORDS, words);
+
+        long[] corners = new long[64];
+        int count = 0;
+        for (int y = first_row; y < last_row; y++) {
+            for (int w = first_word; w < last_word; w++) {
+                long u = word(grid, y - 1, w);
+                long d = word(grid, y + 1, w);
+                long u_w = west(grid, y - 1, w);
+                long u_e = east(grid, y - 1, w);
+                long d_w = west(grid, y + 1, w);
+                long d_e = east(grid, y + 1, w);
+                if ((u | d | u_w | u_e | d_w | d_e) == 0) { //nothing above or below, no corners
+                    continue;
+                }
+                long o = word(grid, y, w);
+                long o_w = west(grid, y, w);
+                long o_e = east(grid, y, w);
+
+                long outside = (u_w & ~o_w & ~u) | (u_e & ~o_e & ~u)
+                        | (d_e & ~o_e & ~d) | (d_w & ~o_w & ~d);
+                long inside = (u & ((o_e & ~u_e) | (o_w & ~u_w)))
+                        | (d & ((o_e & ~d_e) | (o_w & ~d_w)));
+                long found = (outside | inside) & ~o;
+                if (w == words - 1 && (length & 63) != 0) {
+                    found &= (1L << length) - 1;
+                }
+                while (found != 0) {
+                    int bit = Long.numberOfTrailingZeros(found);
+                    found &= found - 1;
+                    if (count == corners.length) {
+                        corners = Arrays.copyOf(corners, count * 2);
+                    }
+                    long is_inside = (outside >>> bit & 1) == 0 ? 1 : 0;
+                    corners[count++] = ((long) y << 32) | ((long) ((w << 6) + bit) << 1) | is_inside;
+                }
+            }
+        }
+        return Arrays.copyOf(corners, count);
+    }
+
+    /**
+     * @return the word of row y at index w, or no obstacles if it's off the
+     * map.
+     */
+    private long word(long[][] grid, int y, int w) {
+        if (y < 0 || y >= height || w < 0 || w >= words) {
+            return 0;
+        }
+        return grid[y][w];
+    }
+
+    /**
+     * @return the word of row y at index w, with bit i holding the cell to the
+     * west of it.
+     */
+    private long west(long[][] grid, int y, int w) {
+        return (word(grid, y, w) << 1) | (word(grid, y, w - 1) >>> 63);
+    }
+
+    /**
+     * @return the word of row y at index w, with bit i holding the cell to the
+     * east of it.
+     */
+    private long east(long[][] grid, int y, int w) {
+        return (word(grid, y, w) >>> 1) | (word(grid, y, w + 1) << 63);
+    }
+
+    /**
+     * Brings the clearance map up to date with the rows that got obstacles
+     * since the last build. The clearance is a Chebyshev distance transform,
+     * capped at max_radius + 1, done in two passes that each run in parallel:
+     * first the distance along each changed row, then for every column the
+     * closest of those within reach.
+     */
+    private void updateClearance() {
+        int cap = max_radius + 1;
+        int[] rows = new int[height];
+        int count = 0;
+        for (int y = 0; y < height; y++) {
+            if (changed_rows[y]) {
+                rows[count++] = y;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        pool.invoke(new ClearancePass(false, Arrays.copyOf(rows, count), 0, count));
+
+        //any row within reach of a changed row may have changed
+        boolean[] affected = new boolean[height];
+        for (int i = 0; i < count; i++) {
+            for (int y = Math.max(rows[i] - cap, 0); y <= Math.min(rows[i] + cap, height - 1); y++) {
+                affected[y] = true;
+            }
+            changed_rows[rows[i]] = false;
+        }
+        count = 0;
+        for (int y = 0; y < height; y++) {
+            if (affected[y]) {
+                rows[count++] = y;
+            }
+        }
+        rows = Arrays.copyOf(rows, count);
+        pool.invoke(new ClearancePass(true, rows, 0, length));
+
+        for (int y : rows) {
+            for (int r = 1; r <= max_radius; r++) {
+                Arrays.fill(inflated[r - 1][y], 0);
+            }
+            for (int x = 0; x < length; x++) {
+                for (int r = Math.max(clearance[x][y] + 1, 1); r <= max_radius; r++) {
+                    inflated[r - 1][y][x >> 6] |= 1L << x;
+                }
+            }
         }
-        return false;
+    }
+
+    /**
+     * One pass of updateClearance(), over a range of changed rows or of all
+     * columns.
+     */
+    private class ClearancePass extends RecursiveAction {
+
+        private final boolean columns;
+        private final int[] rows;
+        private final int from;
+        private final int to;
+
+        ClearancePass(boolean columns, int[] rows, int from, int to) {
+            this.columns = columns;
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 16) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ClearancePass(columns, rows, from, middle),
+                        new ClearancePass(columns, rows, middle, to));
+                return;
+            }
+            int cap = max_radius + 1;
+            for (int i = from; i < to; i++) {
+                if (columns) {
+                    int x = i;
+                    for (int y : rows) {
+                        //off the map counts as an obstacle
+                        int d = Math.min(cap, Math.min(y + 1, height - y));
+                        for (int k = Math.max(y - d + 1, 0); k <= Math.min(y + d - 1, height - 1); k++) {
+                            d = Math.min(d, Math.max(row_clearance[x][k], Math.abs(k - y)));
+                        }
+                        clearance[x][y] = (byte) (d - 1);
+                    }
+                } else {
+                    int y = rows[i];
+                    int d = 0;
+                    for (int x = 0; x < length; x++) {
+                        d = map[x][y] == 1 ? 0 : Math.min(d + 1, cap);
+                        row_clearance[x][y] = (byte) d;
+                    }
+                    d = 0;
+                    for (int x = length - 1; x >= 0; x--) {
+                        d = map[x][y] == 1 ? 0 : Math.min(d + 1, cap);
+                        row_clearance[x][y] = (byte) Math.min(d, row_clearance[x][y]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param start the initial position
+     * @param finish the desired ending location
+     * @return false if there is certainly no path between the positions. A
+     * true doesn't promise there is one.
+     */
+    public boolean isReachable(Point start, Point finish) {
+        return reachability.connected(start, finish);
     }
 
     /**
@@ -246,7 +860,7 @@ public class GraphBuilder {
      * of waypoints.
      */
     public Point[] getWayPoints() {
-        return waypoints;
+        return layers[0].waypoints;
     }
 
     /**
@@ -254,7 +868,23 @@ public class GraphBuilder {
      * @return The number of found waypoints.
      */
     public int num_waypoints() {
-        return waypoint_index;
+        return layers[0].waypoint_index;
+    }
+
+    /**
+     *
+     * @return The number of obstacles added so far.
+     */
+    public int num_obstacles() {
+        return obstacle_index;
+    }
+
+    /**
+     * @param val The index of the obstacle, in the order they were added.
+     * @return The position of the obstacle.
+     */
+    public Point getObstacle(int val) {
+        return obstacles[val];
     }
 
     /**
@@ -265,7 +895,7 @@ public class GraphBuilder {
      * @return The position of the waypoint.
      */
     public Point getWaypoint(int val) {
-        return waypoints[val];
+        return layers[0].waypoints[val];
     }
 
     /**
@@ -278,74 +908,68 @@ public class GraphBuilder {
      * it is guaranteed that the next is visible.
      */
     public Point[] getPath(Point start, Point finish) {
-        waypoints[waypoint_index] = start;
-        waypoints[waypoint_index + 1] = finish;
-        waypoint_index += 2; //temporary index adjustment
-        int[] path = findPath(); //find the path
-        waypoint_index -= 2; //replace
-        if (path == null) { //if null, return null
-            return null;
+        return layers[0].search(start, finish);
+    }
+
+    /**
+     * Same as getPath(start, finish), for an agent of the given radius. Only
+     * the waypoints of that radius and edges with at least that much
+     * clearance are used.
+     *
+     * @param start the initial position of the agent's center
+     * @param finish the desired ending location
+     * @param radius the agent's radius, up to the max_radius the graph was
+     * made with
+     * @return a list of waypoints describing where to go, or null if the
+     * agent can't get there.
+     */
+    public Point[] getAgentPath(Point start, Point finish, int radius) {
+        if (radius < 0 || radius > max_radius) {
+            throw new IllegalArgumentException("radius " + radius + " is outside 0.." + max_radius);
         }
-        Point[] final_path = new Point[path.length]; //convert the path from indices to positions
-        for (int i = 0; i < path.length; i++) {
-            final_path[i] = waypoints[path[i]];
+        if (radius > 0 && !(isValid(start.x, start.y) && isValid(finish.x, finish.y)
+                && clearance[start.x][start.y] >= radius && clearance[finish.x][finish.y] >= radius)) {
+            return null;
         }
-        final_path[path.length - 1] = finish;
-
-        return final_path;
+        return layers[radius].search(start, finish);
     }
 
-    private int[] findPath() {
-        //Zero out the old path values
-        int start = waypoint_index - 2;
-        int finish = waypoint_index - 1;
-        for (int i = 0; i < waypoint_index; i++) {
-            adj_matrix[start][i] = 0;
-            adj_matrix[i][start] = 0;
-            adj_matrix[finish][i] = 0;
-            adj_matrix[i][finish] = 0;
+    /**
+     * @param x x-coordinate
+     * @param y y-coordinate
+     * @return the radius of the biggest agent that fits at the position, up to
+     * the max_radius the graph was made with, or -1 on an obstacle.
+     */
+    public int getClearance(int x, int y) {
+        if (max_radius == 0) {
+            return map[x][y] == 1 ? -1 : 0;
         }
+        return clearance[x][y];
+    }
 
-        IntDoubleHeap to_evaluate = new IntDoubleHeap(waypoint_index); //Uses a simple heap as a priority queue
-        double[] f_costs = new double[adj_matrix.length]; //the minimum cost to get to a vertex
-        double[] g_costs = new double[adj_matrix.length];
-        int[] min_index = new int[adj_matrix.length]; //the vertex's lowest cost neighbor
-        boolean[] closed_set = new boolean[adj_matrix.length];
-        boolean[] isInOpenSet = new boolean[adj_matrix.length];
-
-        int count = 0;
-        int current;
-        to_evaluate.add(start, 0); //add the start to the queue
-        f_costs[start] = 0;
-        g_costs[start] = 0;
-
-        while (!to_evaluate.isEmpty()) { //evaluate until there are no more vertices to evaluate
-            count++;
-            current = to_evaluate.pop(); //pop the lowest f-cost
-            if (current == finish) { //if at the end, finish right now
-                System.out.println(count);
-                return cleanup(min_index, adj_matrix, finish, start);
-            }
-            closed_set[current] = true;
-            for (int i = 0; i < adj_matrix[current].length; i++) { //visit all neighbors
-                if (!closed_set[i] && isVisible(i, current)) {
-                    double cost = adj_matrix[i][current] + g_costs[current]; //total cost to visit node i from current
-                    if (!isInOpenSet[i] || cost < g_costs[i]) {
-                        g_costs[i] = cost;
-                        f_costs[i] = cost + octile(waypoints[i], waypoints[finish]) * octile_multiplier; //uses octile search heuristic times two.
-                        min_index[i] = current;
-                        if (!isInOpenSet[i]) {
-                            to_evaluate.add(i, f_costs[i]);
-                            isInOpenSet[i] = true;
-                        }
-                    }
-                }
-            }
-        }
-        return null;
+    /**
+     * Like getPath(start, finish), but searches with ARA* and gives up
+     * improving the path once the time budget is spent.
+     *
+     * @param start the initial position
+     * @param finish the desired ending location
+     * @param budget how long to search for, in nanoseconds
+     * @return the search, holding the best path found in time. If it
+     * isOptimal() with no best path, there is no path at all. If it isn't
+     * optimal, improve() can be called again to keep going.
+     */
+    public AnytimeSearch getPath(Point start, Point finish, long budget) {
+        long deadline = System.nanoTime() + budget; //refreshing the index counts too
+        AnytimeSearch search = new AnytimeSearch(this, start, finish);
+        search.improve(deadline);
+        return search;
     }
 
     public double octile(Point p, Point p2) {
+        return octileDistance(p, p2);
+    }
+
+    static double octileDistance(Point p, Point p2) {
         int x = Math.abs(p2.x - p.x);
         int y = Math.abs(p2.y - p.y);
         return Math.max(x, y) + octile_constant * Math.min(x, y);
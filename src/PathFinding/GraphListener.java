@@ -0,0 +1,25 @@
+package PathFinding;
+
+/**
+ * Gets told whenever a GraphBuilder rebuilds its matrix, so that searches
+ * kept around between queries can repair themselves instead of starting
+ * over.
+ *
+ * @author amauryesparza
+ */
+public interface GraphListener {
+
+    /**
+     * Called at the end of buildMatrix(). Obstacles are only ever added and
+     * waypoints only ever appended, so everything from the given indices on
+     * is new. Cached visibility was thrown away, so any edge may have been
+     * blocked by one of the new obstacles.
+     *
+     * @param graph the graph that changed
+     * @param first_obstacle the index of the first obstacle added since the
+     * last build
+     * @param first_waypoint the index of the first waypoint found by this
+     * build
+     */
+    void graphChanged(GraphBuilder graph, int first_obstacle, int first_waypoint);
+}
@@ -0,0 +1,291 @@
+package PathFinding;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An immutable snapshot of a visibility graph, as published by
+ * VersionedGraph. Any number of threads may query a version at the same time
+ * without locking. The occupancy grid is stored as 64x64 bit chunks and the
+ * visibility cache as 64x64 blocks of waypoint pairs, so that consecutive
+ * versions can share every chunk and block an edit did not touch.
+ *
+ * @author amauryesparza
+ */
+public final class GraphVersion implements ObstacleGrid {
+
+    static final int CHUNK_BITS = 6;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final long version;
+
+    private final int length;
+    private final int height;
+
+    private final int chunks_wide;
+    private final long[][] chunks; //null chunks have no obstacles
+
+    private final Point[][] waypoint_blocks;
+    private final int[][] block_bounds; //minx, miny, maxx, maxy of each waypoint block
+    private final int num_waypoints;
+
+    //Lazily filled visibility cache, one block per pair of waypoint blocks.
+    //0 is unknown, -1 is not visible, anything else is the edge cost plus one.
+    private final AtomicReferenceArray<int[]> edge_blocks;
+    private final int num_blocks;
+
+    GraphVersion(int length, int height) {
+        this.version = 0;
+        this.length = length;
+        this.height = height;
+        chunks_wide = (length + CHUNK_MASK) >> CHUNK_BITS;
+        chunks = new long[chunks_wide * ((height + CHUNK_MASK) >> CHUNK_BITS)][];
+        waypoint_blocks = new Point[0][];
+        block_bounds = new int[0][];
+        num_waypoints = 0;
+        num_blocks = 0;
+        edge_blocks = new AtomicReferenceArray<>(0);
+    }
+
+    private GraphVersion(GraphVersion previous, long[][] chunks, Point[][] waypoint_blocks,
+            int[][] block_bounds, int num_waypoints, AtomicReferenceArray<int[]> edge_blocks) {
+        this.version = previous.version + 1;
+        this.length = previous.length;
+        this.height = previous.height;
+        this.chunks_wide = previous.chunks_wide;
+        this.chunks = chunks;
+        this.waypoint_blocks = waypoint_blocks;
+        this.block_bounds = block_bounds;
+        this.num_waypoints = num_waypoints;
+        this.num_blocks = waypoint_blocks.length;
+        this.edge_blocks = edge_blocks;
+    }
+
+    /**
+     * Creates the version following this one. Grid chunks without any staged
+     * obstacle are shared, as are visibility blocks whose waypoints are boxed
+     * away from every staged obstacle: adding obstacles can only hide an edge
+     * that passes through one, and an edge never leaves the bounding box of
+     * its two waypoint blocks.
+     *
+     * @param staged the obstacles added since this version was published
+     * @param builder the writer's graph, already rebuilt with the staged
+     * obstacles
+     * @return the new version
+     */
+    GraphVersion next(List<Point> staged, GraphBuilder builder) {
+        long[][] new_chunks = chunks.clone();
+        boolean[] copied = new boolean[chunks.length];
+        for (Point p : staged) {
+            int c = chunkIndex(p.x, p.y);
+            if (!copied[c]) {
+                new_chunks[c] = chunks[c] == null ? new long[CHUNK_SIZE] : chunks[c].clone();
+                copied[c] = true;
+            }
+            new_chunks[c][p.y & CHUNK_MASK] |= 1L << (p.x & CHUNK_MASK);
+        }
+
+        //waypoints are only ever appended, so every full block carries over
+        int count = builder.num_waypoints();
+        int blocks = (count + CHUNK_MASK) >> CHUNK_BITS;
+        Point[][] new_waypoints = Arrays.copyOf(waypoint_blocks, blocks);
+        int[][] new_bounds = Arrays.copyOf(block_bounds, blocks);
+        for (int b = num_waypoints >> CHUNK_BITS; b < blocks; b++) {
+            Point[] block = new Point[CHUNK_SIZE];
+            int[] bounds = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+            int end = Math.min(count, (b + 1) << CHUNK_BITS);
+            for (int i = b << CHUNK_BITS; i < end; i++) {
+                Point p = builder.getWaypoint(i);
+                block[i & CHUNK_MASK] = p;
+                bounds[0] = Math.min(bounds[0], p.x);
+                bounds[1] = Math.min(bounds[1], p.y);
+                bounds[2] = Math.max(bounds[2], p.x);
+                bounds[3] = Math.max(bounds[3], p.y);
+            }
+            new_waypoints[b] = block;
+            new_bounds[b] = bounds;
+        }
+
+        AtomicReferenceArray<int[]> new_edges = new AtomicReferenceArray<>(blocks * blocks);
+        for (int i = 0; i < num_blocks; i++) {
+            for (int j = 0; j < num_blocks; j++) {
+                int[] block = edge_blocks.get(i * num_blocks + j);
+                if (block != null && !touches(staged, block_bounds[i], block_bounds[j])) {
+                    new_edges.set(i * blocks + j, block);
+                }
+            }
+        }
+        return new GraphVersion(this, new_chunks, new_waypoints, new_bounds, count, new_edges);
+    }
+
+    private static boolean touches(List<Point> staged, int[] a, int[] b) {
+        int min_x = Math.min(a[0], b[0]);
+        int min_y = Math.min(a[1], b[1]);
+        int max_x = Math.max(a[2], b[2]);
+        int max_y = Math.max(a[3], b[3]);
+        for (Point p : staged) {
+            if (p.x >= min_x && p.x <= max_x && p.y >= min_y && p.y <= max_y) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *
+     * @return The number of versions published before this one.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     *
+     * @return The number of waypoints in this version.
+     */
+    public int num_waypoints() {
+        return num_waypoints;
+    }
+
+    /**
+     * @param val The index of the waypoint, as in GraphBuilder.
+     * @return The position of the waypoint.
+     */
+    public Point getWaypoint(int val) {
+        return waypoint_blocks[val >> CHUNK_BITS][val & CHUNK_MASK];
+    }
+
+    /**
+     * @param x x-coordinate
+     * @param y y-coordinate
+     * @return true if there was an obstacle at the position when this version
+     * was published.
+     */
+    @Override
+    public boolean isObstacle(int x, int y) {
+        long[] chunk = chunks[chunkIndex(x, y)];
+        return chunk != null && (chunk[y & CHUNK_MASK] >>> (x & CHUNK_MASK) & 1) != 0;
+    }
+
+    private int chunkIndex(int x, int y) {
+        return (x >> CHUNK_BITS) + (y >> CHUNK_BITS) * chunks_wide;
+    }
+
+    /**
+     * Same as GraphBuilder.getPath, but safe to call from any thread. All
+     * search state is local to the call.
+     *
+     * @param start the initial position
+     * @param finish the desired ending location
+     * @return a list of waypoints describing where to go, or null if there is
+     * no path.
+     */
+    public Point[] getPath(Point start, Point finish) {
+        if (!isValid(start.x, start.y) || !isValid(finish.x, finish.y)) {
+            return null;
+        }
+        int n = num_waypoints + 2;
+        int start_index = n - 2;
+        int finish_index = n - 1;
+        int[][] endpoint_edges = new int[2][n]; //edges of the start and finish aren't shared
+
+        IntDoubleHeap to_evaluate = new IntDoubleHeap(n);
+        double[] g_costs = new double[n];
+        int[] min_index = new int[n];
+        boolean[] closed_set = new boolean[n];
+        boolean[] isInOpenSet = new boolean[n];
+
+        to_evaluate.add(start_index, 0);
+        while (!to_evaluate.isEmpty()) {
+            int current = to_evaluate.pop();
+            if (current == finish_index) {
+                return cleanup(min_index, start_index, finish_index, start, finish);
+            }
+            closed_set[current] = true;
+            for (int i = 0; i < n; i++) {
+                if (closed_set[i]) {
+                    continue;
+                }
+                int edge = edge(i, current, endpoint_edges, start, finish);
+                if (edge >= 0) {
+                    double cost = edge + g_costs[current];
+                    if (!isInOpenSet[i] || cost < g_costs[i]) {
+                        g_costs[i] = cost;
+                        min_index[i] = current;
+                        if (!isInOpenSet[i]) {
+                            Point to = point(i, start, finish);
+                            to_evaluate.add(i, cost + GraphBuilder.octileDistance(to, finish) * GraphBuilder.octile_multiplier);
+                            isInOpenSet[i] = true;
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private Point point(int index, Point start, Point finish) {
+        if (index < num_waypoints) {
+            return getWaypoint(index);
+        }
+        return index == num_waypoints ? start : finish;
+    }
+
+    /**
+     * @return the cost of the edge between a and b, or -1 if they can't see
+     * each other.
+     */
+    private int edge(int a, int b, int[][] endpoint_edges, Point start, Point finish) {
+        if (a > b) {
+            int temp = a;
+            a = b;
+            b = temp;
+        }
+        int[] cache;
+        int slot;
+        if (b >= num_waypoints) {
+            cache = endpoint_edges[b - num_waypoints];
+            slot = a;
+        } else {
+            int block_index = (a >> CHUNK_BITS) * num_blocks + (b >> CHUNK_BITS);
+            cache = edge_blocks.get(block_index);
+            if (cache == null) {
+                edge_blocks.compareAndSet(block_index, null, new int[CHUNK_SIZE * CHUNK_SIZE]);
+                cache = edge_blocks.get(block_index);
+            }
+            slot = ((a & CHUNK_MASK) << CHUNK_BITS) | (b & CHUNK_MASK);
+        }
+        int edge = cache[slot];
+        if (edge == 0) {
+            Point p1 = point(a, start, finish);
+            Point p2 = point(b, start, finish);
+            if (GraphBuilder.canSee(this, p1, p2)) {
+                edge = Math.abs(p1.x - p2.x) + Math.abs(p1.y - p2.y) + 1;
+            } else {
+                edge = -1;
+            }
+            cache[slot] = edge; //racing threads always store the same value
+        }
+        return edge < 0 ? -1 : edge - 1;
+    }
+
+    private boolean isValid(int x, int y) {
+        return (x < length && x >= 0 && y < height && y >= 0);
+    }
+
+    private Point[] cleanup(int[] indices, int start_index, int finish_index, Point start, Point finish) {
+        int length = 0;
+        for (int current = finish_index; current != start_index; current = indices[current]) {
+            length++;
+        }
+        Point[] final_path = new Point[length];
+        int current = finish_index;
+        for (int i = length - 1; i >= 0; i--) {
+            final_path[i] = point(current, start, finish);
+            current = indices[current];
+        }
+        return final_path;
+    }
+}
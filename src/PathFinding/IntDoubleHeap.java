@@ -5,6 +5,8 @@
  */
 package PathFinding;
 
+import java.util.Arrays;
+
 /**
  * A quick and dirty array-based heap implementation, designed for use as a
  * priority queue. 
@@ -13,15 +15,16 @@ package PathFinding;
  */
 public class IntDoubleHeap {
 
-    private final int capacity;
     private int index;
-    private final int[] points;
-    private final double[] costs;
+    private int[] points;
+    private double[] costs;
     
+    /**
+     * @param capacity the initial capacity. The heap grows past it if needed.
+     */
     public IntDoubleHeap(int capacity) {
-        this.capacity = capacity;
-        points = new int[capacity];
-        costs = new double[capacity];
+        points = new int[Math.max(capacity, 1)];
+        costs = new double[points.length];
         index = 0;
     }
 
@@ -38,12 +41,14 @@ public class IntDoubleHeap {
     
 
     public void add(int p, double cost) {
+        if (index == points.length) {
+            points = Arrays.copyOf(points, index * 2);
+            costs = Arrays.copyOf(costs, index * 2);
+        }
         points[index] = p;
         costs[index] = cost;
         int temp_index = index;
-        if (index < capacity) {
-            index++;
-        }
+        index++;
         while (true) {
             int parent_index = (temp_index - 1) / 2;
             double parent_cost = costs[parent_index];
@@ -88,6 +93,20 @@ public class IntDoubleHeap {
         }
     }
 
+    /**
+     * @return the point with the lowest cost, without removing it.
+     */
+    public int peek() {
+        return points[0];
+    }
+
+    /**
+     * @return the lowest cost in the heap.
+     */
+    public double peekCost() {
+        return costs[0];
+    }
+
     public boolean isEmpty() {
         return (index == 0);
     }
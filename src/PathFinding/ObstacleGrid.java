@@ -0,0 +1,17 @@
+package PathFinding;
+
+/**
+ * Anything line of sight can be checked against, so that GraphBuilder and
+ * GraphVersion walk their lines the same way.
+ *
+ * @author amauryesparza
+ */
+interface ObstacleGrid {
+
+    /**
+     * @param x x-coordinate, inside the map
+     * @param y y-coordinate, inside the map
+     * @return true if there is an obstacle at the position.
+     */
+    boolean isObstacle(int x, int y);
+}
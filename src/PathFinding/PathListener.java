@@ -0,0 +1,17 @@
+package PathFinding;
+
+/**
+ * Gets told every time an AnytimeSearch finds a better path.
+ *
+ * @author amauryesparza
+ */
+public interface PathListener {
+
+    /**
+     * @param path the new best path, in the same form as
+     * GraphBuilder.getPath()
+     * @param bound how much longer than the optimum the path can be at most,
+     * as a factor. 1 means it is optimal.
+     */
+    void pathImproved(Point[] path, double bound);
+}
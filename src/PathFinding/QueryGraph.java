@@ -0,0 +1,92 @@
+package PathFinding;
+
+import java.util.Arrays;
+
+/**
+ * A GraphBuilder's waypoints plus a start and a goal, for searches that live
+ * longer than a single getPath() call. Vertex 0 is the start, vertex 1 is the
+ * goal and vertex i + 2 is waypoint i. Edges between waypoints use the
+ * builder's own cache, edges to the start and goal are cached here.
+ *
+ * @author amauryesparza
+ */
+class QueryGraph {
+
+    static final int START = 0;
+    static final int GOAL = 1;
+
+    private final GraphBuilder graph;
+    private Point start;
+    private final Point goal;
+    private int size;
+
+    //0 is unknown, -1 is not visible, anything else is the edge cost plus one
+    private int[] start_edges;
+    private int[] goal_edges;
+
+    QueryGraph(GraphBuilder graph, Point start, Point goal) {
+        this.graph = graph;
+        this.start = start;
+        this.goal = goal;
+        refresh();
+    }
+
+    /**
+     * Picks up waypoints added by the last buildMatrix() and forgets the
+     * cached start and goal edges, which may have been blocked since.
+     */
+    void refresh() {
+        size = graph.num_waypoints() + 2;
+        start_edges = new int[size];
+        goal_edges = new int[size];
+    }
+
+    void setStart(Point start) {
+        this.start = start;
+        Arrays.fill(start_edges, 0);
+    }
+
+    int size() {
+        return size;
+    }
+
+    Point point(int v) {
+        if (v == START) {
+            return start;
+        }
+        return v == GOAL ? goal : graph.getWaypoint(v - 2);
+    }
+
+    /**
+     * @return the cost of the edge between u and v, or -1 if they can't see
+     * each other.
+     */
+    int cost(int u, int v) {
+        if (u == v) {
+            return -1;
+        }
+        if (u > v) {
+            int temp = u;
+            u = v;
+            v = temp;
+        }
+        if (u > GOAL) {
+            return graph.edge(u - 2, v - 2);
+        }
+        int[] cache = u == START ? start_edges : goal_edges;
+        if (cache[v] == 0) {
+            Point p1 = point(u);
+            Point p2 = point(v);
+            if (GraphBuilder.canSee(graph, p1, p2)) {
+                cache[v] = Math.abs(p1.x - p2.x) + Math.abs(p1.y - p2.y) + 1;
+            } else {
+                cache[v] = -1;
+            }
+        }
+        return cache[v] < 0 ? -1 : cache[v] - 1;
+    }
+
+    double heuristic(int u, int v) {
+        return graph.octile(point(u), point(v));
+    }
+}
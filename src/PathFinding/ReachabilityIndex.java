@@ -0,0 +1,375 @@
+package PathFinding;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Labels the connected regions of free space, so that queries between two
+ * regions can be turned down without searching. Cells count as connected to
+ * all eight neighbours, which is a superset of the moves a path can make, so
+ * a pair is never turned down if a path exists.
+ *
+ * The map is split into tiles of 64x64 cells, one word of each of 64 rows.
+ * Each tile is labelled on its own, and only tiles that had an obstacle added
+ * are labelled again. The pairs of labels that touch across each tile border
+ * are kept, and only the borders of relabelled tiles are walked again. The
+ * tile labels are then joined with union-find over those pairs, without
+ * looking at any cells.
+ *
+ * @author amauryesparza
+ */
+class ReachabilityIndex {
+
+    private static final int TILE = 64;
+
+    private final long[][] occupancy;
+    private final int length;
+    private final int height;
+    private final int tiles_wide;
+    private final int tiles_high;
+
+    //Local labels of each cell of a tile, row-major, -1 for obstacles.
+    //Tiles without obstacles are null and have the single label 0.
+    private final short[][] labels;
+    private final int[] counts;
+    private final boolean[] dirty;
+    private boolean stale;
+
+    //The label pairs touching across the borders to the east, south,
+    //south-east and south-west of each tile, packed by pack()
+    private final int[][] links;
+    private final boolean[] links_dirty;
+    private static final int EAST = 0;
+    private static final int SOUTH = 1;
+    private static final int SOUTH_EAST = 2;
+    private static final int SOUTH_WEST = 3;
+    private final int[] neighbours; //the tile index offset of each direction
+
+    private final int[] base; //the global label of each tile's label 0
+    private int[] component; //by global label
+
+    ReachabilityIndex(long[][] occupancy, int length, int height) {
+        this.occupancy = occupancy;
+        this.length = length;
+        this.height = height;
+        tiles_wide = (length + TILE - 1) / TILE;
+        tiles_high = (height + TILE - 1) / TILE;
+        int tiles = tiles_wide * tiles_high;
+        labels = new short[tiles][];
+        counts = new int[tiles];
+        dirty = new boolean[tiles];
+        links = new int[tiles][];
+        links_dirty = new boolean[tiles];
+        neighbours = new int[]{1, tiles_wide, tiles_wide + 1, tiles_wide - 1};
+        base = new int[tiles];
+        Arrays.fill(counts, 1);
+        Arrays.fill(links_dirty, true);
+        stale = true;
+    }
+
+    void markDirty(int x, int y) {
+        dirty[(y / TILE) * tiles_wide + x / TILE] = true;
+        stale = true;
+    }
+
+    /**
+     * @return false if both points are free and can't possibly reach each
+     * other. Points on obstacles or off the map are left to the search.
+     */
+    boolean connected(Point p1, Point p2) {
+        if (stale) {
+            refresh();
+        }
+        int a = label(p1.x, p1.y);
+        int b = label(p2.x, p2.y);
+        return a < 0 || b < 0 || component[a] == component[b];
+    }
+
+    /**
+     * @return the global label of a cell, or -1 if it's an obstacle or off
+     * the map.
+     */
+    private int label(int x, int y) {
+        if (x < 0 || x >= length || y < 0 || y >= height) {
+            return -1;
+        }
+        int t = (y / TILE) * tiles_wide + x / TILE;
+        if (labels[t] == null) {
+            return base[t];
+        }
+        int local = labels[t][(y % TILE) * TILE + x % TILE];
+        return local < 0 ? -1 : base[t] + local;
+    }
+
+    /**
+     * Relabels the dirty tiles in parallel, then finds the label pairs across
+     * their borders, then joins all tiles.
+     */
+    void refresh() {
+        int[] tiles = collect(dirty);
+        GraphBuilder.pool.invoke(new TileAction(false, tiles, 0, tiles.length));
+        for (int t : tiles) {
+            //the borders are kept by the tile to the north or west of them
+            int tx = t % tiles_wide;
+            links_dirty[t] = true;
+            if (tx > 0) {
+                links_dirty[t - 1] = true;
+            }
+            if (t >= tiles_wide) {
+                links_dirty[t - tiles_wide] = true;
+                if (tx > 0) {
+                    links_dirty[t - tiles_wide - 1] = true;
+                }
+                if (tx + 1 < tiles_wide) {
+                    links_dirty[t - tiles_wide + 1] = true;
+                }
+            }
+        }
+        tiles = collect(links_dirty);
+        GraphBuilder.pool.invoke(new TileAction(true, tiles, 0, tiles.length));
+
+        int total = 0;
+        for (int t = 0; t < counts.length; t++) {
+            base[t] = total;
+            total += counts[t];
+        }
+        int[] parent = new int[total];
+        for (int i = 0; i < total; i++) {
+            parent[i] = i;
+        }
+        for (int t = 0; t < links.length; t++) {
+            for (int link : links[t]) {
+                int n = t + neighbours[link >>> 28];
+                union(parent, base[t] + (link >>> 14 & 0x3fff), base[n] + (link & 0x3fff));
+            }
+        }
+        component = new int[total];
+        for (int i = 0; i < total; i++) {
+            component[i] = find(parent, i);
+        }
+        stale = false;
+    }
+
+    /**
+     * @return the indices of the flagged tiles, clearing the flags.
+     */
+    private static int[] collect(boolean[] flags) {
+        int count = 0;
+        for (boolean flag : flags) {
+            if (flag) {
+                count++;
+            }
+        }
+        int[] tiles = new int[count];
+        count = 0;
+        for (int t = 0; t < flags.length; t++) {
+            if (flags[t]) {
+                tiles[count++] = t;
+                flags[t] = false;
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * @return the local label of a cell given relative to its tile, or -1.
+     */
+    private int local(int t, int c, int r) {
+        return labels[t] == null ? 0 : labels[t][r * TILE + c];
+    }
+
+    private static int pack(int direction, int a, int b) {
+        return direction << 28 | a << 14 | b;
+    }
+
+    /**
+     * Finds the pairs of labels that touch across the borders to the east,
+     * south, south-east and south-west of a tile, diagonals included.
+     */
+    private void link(int t) {
+        int tx = t % tiles_wide;
+        int ty = t / tiles_wide;
+        int[] found = new int[6 * TILE + 2];
+        int count = 0;
+        if (tx + 1 < tiles_wide) {
+            if (labels[t] == null && labels[t + 1] == null) { //both one open region
+                found[count++] = pack(EAST, 0, 0);
+            } else {
+                for (int r = 0; r < TILE; r++) {
+                    int a = local(t, TILE - 1, r);
+                    for (int k = Math.max(r - 1, 0); a >= 0 && k <= Math.min(r + 1, TILE - 1); k++) {
+                        int b = local(t + 1, 0, k);
+                        if (b >= 0) {
+                            found[count++] = pack(EAST, a, b);
+                        }
+                    }
+                }
+            }
+        }
+        if (ty + 1 < tiles_high) {
+            int s = t + tiles_wide;
+            if (labels[t] == null && labels[s] == null) {
+                found[count++] = pack(SOUTH, 0, 0);
+            } else {
+                for (int c = 0; c < TILE; c++) {
+                    int a = local(t, c, TILE - 1);
+                    for (int k = Math.max(c - 1, 0); a >= 0 && k <= Math.min(c + 1, TILE - 1); k++) {
+                        int b = local(s, k, 0);
+                        if (b >= 0) {
+                            found[count++] = pack(SOUTH, a, b);
+                        }
+                    }
+                }
+            }
+            if (tx + 1 < tiles_wide) {
+                int a = local(t, TILE - 1, TILE - 1);
+                int b = local(s + 1, 0, 0);
+                if (a >= 0 && b >= 0) {
+                    found[count++] = pack(SOUTH_EAST, a, b);
+                }
+            }
+            if (tx > 0) {
+                int a = local(t, 0, TILE - 1);
+                int b = local(s - 1, TILE - 1, 0);
+                if (a >= 0 && b >= 0) {
+                    found[count++] = pack(SOUTH_WEST, a, b);
+                }
+            }
+        }
+        Arrays.sort(found, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || found[i] != found[unique - 1]) {
+                found[unique++] = found[i];
+            }
+        }
+        links[t] = Arrays.copyOf(found, unique);
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        if (a < 0 || b < 0) {
+            return;
+        }
+        a = find(parent, a);
+        b = find(parent, b);
+        if (a != b) {
+            parent[Math.max(a, b)] = Math.min(a, b);
+        }
+    }
+
+    private static int find(int[] parent, int a) {
+        while (parent[a] != a) {
+            parent[a] = parent[parent[a]];
+            a = parent[a];
+        }
+        return a;
+    }
+
+    /**
+     * Relabels, or finds the border pairs of, a range of tiles.
+     */
+    private class TileAction extends RecursiveAction {
+
+        private final boolean linking;
+        private final int[] tiles;
+        private final int from;
+        private final int to;
+
+        TileAction(boolean linking, int[] tiles, int from, int to) {
+            this.linking = linking;
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (from < to && linking) {
+                    link(tiles[from]);
+                } else if (from < to) {
+                    relabel(tiles[from]);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new TileAction(linking, tiles, from, middle), new TileAction(linking, tiles, middle, to));
+        }
+    }
+
+    /**
+     * Labels the free cells of one tile. Each row is cut into runs of free
+     * cells, and runs on neighbouring rows are joined with union-find when
+     * they touch, diagonals included.
+     */
+    private void relabel(int t) {
+        int tx = t % tiles_wide;
+        int ty = t / tiles_wide;
+        long[] blocked = new long[TILE];
+        long off_map = (tx + 1) * TILE > length ? -1L << (length % TILE) : 0;
+        boolean empty = true;
+        for (int r = 0; r < TILE; r++) {
+            int y = ty * TILE + r;
+            blocked[r] = y < height ? occupancy[y][tx] | off_map : -1L;
+            empty &= blocked[r] == 0;
+        }
+        if (empty) {
+            labels[t] = null;
+            counts[t] = 1;
+            return;
+        }
+
+        //runs are stored as start and end column, numbered in row-major order
+        int[] run_start = new int[TILE * TILE / 2];
+        int[] run_end = new int[TILE * TILE / 2];
+        int[] row_first = new int[TILE + 1];
+        int runs = 0;
+        for (int r = 0; r < TILE; r++) {
+            row_first[r] = runs;
+            long free = ~blocked[r];
+            while (free != 0) {
+                int start = Long.numberOfTrailingZeros(free);
+                long after = ~free & (-1L << start);
+                int end = after == 0 ? TILE : Long.numberOfTrailingZeros(after);
+                run_start[runs] = start;
+                run_end[runs] = end;
+                runs++;
+                free = end == TILE ? 0 : free & (-1L << end);
+            }
+        }
+        row_first[TILE] = runs;
+
+        int[] parent = new int[runs];
+        for (int i = 0; i < runs; i++) {
+            parent[i] = i;
+        }
+        for (int r = 1; r < TILE; r++) {
+            int above = row_first[r - 1];
+            for (int i = row_first[r]; i < row_first[r + 1]; i++) {
+                //skip the runs above that end too far left to touch this one
+                while (above < row_first[r] && run_end[above] < run_start[i]) {
+                    above++;
+                }
+                for (int j = above; j < row_first[r] && run_start[j] <= run_end[i]; j++) {
+                    union(parent, i, j);
+                }
+            }
+        }
+
+        short[] tile_labels = new short[TILE * TILE];
+        Arrays.fill(tile_labels, (short) -1);
+        short[] run_labels = new short[runs];
+        short next = 0;
+        for (int i = 0; i < runs; i++) {
+            int root = find(parent, i);
+            run_labels[i] = root == i ? next++ : run_labels[root]; //roots come first
+        }
+        for (int r = 0; r < TILE; r++) {
+            for (int i = row_first[r]; i < row_first[r + 1]; i++) {
+                Arrays.fill(tile_labels, r * TILE + run_start[i], r * TILE + run_end[i], run_labels[i]);
+            }
+        }
+        labels[t] = tile_labels;
+        counts[t] = next;
+    }
+}
@@ -0,0 +1,250 @@
+package PathFinding;
+
+import java.util.Arrays;
+
+/**
+ * Keeps a path up to date for an agent that moves while the map changes,
+ * using D* Lite over the visibility graph. The search runs backwards from the
+ * goal, so moving the agent only changes the edges of the start, and a
+ * buildMatrix() only invalidates the vertices whose best edge was blocked.
+ * Everything else from earlier searches is reused.
+ *
+ * The graph has to be built before the session is made. Call close() when
+ * done, or the graph keeps notifying the session.
+ *
+ * @author amauryesparza
+ */
+public class ReplanSession implements GraphListener {
+
+    private static final int START = QueryGraph.START;
+    private static final int GOAL = QueryGraph.GOAL;
+    private static final double INFINITY = Double.POSITIVE_INFINITY;
+
+    private final GraphBuilder graph;
+    private final QueryGraph query;
+
+    private double[] g_costs; //the cost to the goal as of the last expansion
+    private double[] rhs; //the one-step lookahead of g_costs
+    private int[] next; //the successor that rhs was taken from
+    private double[] keys; //the key each vertex was queued with
+    private boolean[] isInQueue;
+    private final IntDoubleHeap queue;
+
+    private double key_modifier; //km in the paper, grows as the agent moves
+    private Point last;
+
+    public ReplanSession(GraphBuilder graph, Point start, Point goal) {
+        this.graph = graph;
+        query = new QueryGraph(graph, start, goal);
+        last = start;
+        int size = query.size();
+        g_costs = new double[size];
+        rhs = new double[size];
+        next = new int[size];
+        keys = new double[size];
+        isInQueue = new boolean[size];
+        Arrays.fill(g_costs, INFINITY);
+        Arrays.fill(rhs, INFINITY);
+        Arrays.fill(next, -1);
+        queue = new IntDoubleHeap(size);
+
+        rhs[GOAL] = 0;
+        insert(GOAL);
+        graph.addListener(this);
+    }
+
+    /**
+     * Repairs the search as far as needed and reads off the path.
+     *
+     * @return a list of waypoints from the current position to the goal, in
+     * the same form as GraphBuilder.getPath(), or null if there is no path.
+     */
+    public Point[] getPath() {
+        computeShortestPath();
+        if (rhs[START] == INFINITY) {
+            return null;
+        }
+        int[] path = new int[query.size()];
+        int length = 0;
+        int current = START;
+        while (current != GOAL) {
+            current = next[current];
+            if (current < 0 || length == path.length) { //shouldn't happen once consistent
+                return null;
+            }
+            path[length++] = current;
+        }
+        Point[] final_path = new Point[length];
+        for (int i = 0; i < length; i++) {
+            final_path[i] = query.point(path[i]);
+        }
+        return final_path;
+    }
+
+    /**
+     * Moves the agent. Only the start's own edges change.
+     *
+     * @param position the agent's new position
+     */
+    public void moveTo(Point position) {
+        query.setStart(position);
+        key_modifier += graph.octile(last, position);
+        last = position;
+        updateRhs(START);
+        requeue(START);
+    }
+
+    /**
+     * Stops listening to the graph.
+     */
+    public void close() {
+        graph.removeListener(this);
+    }
+
+    @Override
+    public void graphChanged(GraphBuilder graph, int first_obstacle, int first_waypoint) {
+        int old_size = query.size();
+        query.refresh();
+        int size = query.size();
+        if (size > g_costs.length) {
+            int capacity = Math.max(size, g_costs.length * 2);
+            g_costs = Arrays.copyOf(g_costs, capacity);
+            rhs = Arrays.copyOf(rhs, capacity);
+            next = Arrays.copyOf(next, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            isInQueue = Arrays.copyOf(isInQueue, capacity);
+        }
+        for (int u = old_size; u < size; u++) {
+            g_costs[u] = INFINITY;
+            rhs[u] = INFINITY;
+            next[u] = -1;
+            isInQueue[u] = false;
+        }
+
+        //Obstacles only block edges, so a vertex's rhs only changes if the
+        //edge it was taken from got blocked.
+        for (int u = 0; u < old_size; u++) {
+            if (next[u] >= 0 && mayCross(u, next[u], first_obstacle) && query.cost(u, next[u]) < 0) {
+                updateRhs(u);
+                requeue(u);
+            }
+        }
+        for (int u = old_size; u < size; u++) {
+            updateRhs(u);
+            requeue(u);
+        }
+    }
+
+    /**
+     * @return false if none of the new obstacles are inside the bounding box
+     * of the edge, so it can't have been blocked.
+     */
+    private boolean mayCross(int u, int v, int first_obstacle) {
+        Point p1 = query.point(u);
+        Point p2 = query.point(v);
+        int min_x = Math.min(p1.x, p2.x);
+        int min_y = Math.min(p1.y, p2.y);
+        int max_x = Math.max(p1.x, p2.x);
+        int max_y = Math.max(p1.y, p2.y);
+        for (int i = first_obstacle; i < graph.num_obstacles(); i++) {
+            Point p = graph.getObstacle(i);
+            if (p.x >= min_x && p.x <= max_x && p.y >= min_y && p.y <= max_y) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void computeShortestPath() {
+        while (!queue.isEmpty()) {
+            int u = queue.peek();
+            double key_old = queue.peekCost();
+            if (!isInQueue[u] || key_old != keys[u]) { //stale entry
+                queue.pop();
+                continue;
+            }
+            if (key_old > key(START) && rhs[START] == g_costs[START]) {
+                return;
+            }
+            queue.pop();
+            isInQueue[u] = false;
+            double key_new = key(u);
+            if (key_old < key_new) {
+                insert(u);
+            } else if (g_costs[u] > rhs[u]) {
+                g_costs[u] = rhs[u];
+                if (u == START) { //the start is never a successor
+                    continue;
+                }
+                for (int p = 0; p < query.size(); p++) {
+                    if (p == GOAL || p == u) {
+                        continue;
+                    }
+                    int cost = query.cost(p, u);
+                    if (cost >= 0 && cost + g_costs[u] < rhs[p]) {
+                        rhs[p] = cost + g_costs[u];
+                        next[p] = u;
+                        requeue(p);
+                    }
+                }
+            } else {
+                g_costs[u] = INFINITY;
+                for (int p = 0; p < query.size(); p++) {
+                    if (p != GOAL && (p == u || next[p] == u)) {
+                        updateRhs(p);
+                        requeue(p);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Recomputes rhs from all of the vertex's successors.
+     */
+    private void updateRhs(int u) {
+        if (u == GOAL) {
+            return;
+        }
+        double best = INFINITY;
+        int best_next = -1;
+        for (int s = GOAL; s < query.size(); s++) { //skips the start
+            if (s == u || g_costs[s] == INFINITY) {
+                continue;
+            }
+            int cost = query.cost(u, s);
+            if (cost >= 0 && cost + g_costs[s] < best) {
+                best = cost + g_costs[s];
+                best_next = s;
+            }
+        }
+        rhs[u] = best;
+        next[u] = best_next;
+    }
+
+    /**
+     * Puts the vertex in the queue if it's inconsistent, and takes it out
+     * otherwise.
+     */
+    private void requeue(int u) {
+        isInQueue[u] = false;
+        if (g_costs[u] != rhs[u]) {
+            insert(u);
+        }
+    }
+
+    private void insert(int u) {
+        keys[u] = key(u);
+        isInQueue[u] = true;
+        queue.add(u, keys[u]);
+    }
+
+    /**
+     * Only the first component of the usual key is used. To make up for the
+     * missing tie breaker, computeShortestPath() keeps going through vertices
+     * whose key ties with the start's.
+     */
+    private double key(int u) {
+        return Math.min(g_costs[u], rhs[u]) + query.heuristic(START, u) + key_modifier;
+    }
+}
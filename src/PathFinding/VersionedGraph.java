@@ -0,0 +1,85 @@
+package PathFinding;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copy-on-write wrapper around a GraphBuilder for maps that are edited while
+ * other threads are querying them. A single writer thread stages obstacles
+ * with addObstacle() and makes them visible all at once with publish(). Any
+ * number of reader threads call getPath(), or hold on to current() to run
+ * several queries against the same version. Readers never wait for the
+ * writer, and a query that is already running keeps the version it started
+ * with.
+ *
+ * @author amauryesparza
+ */
+public class VersionedGraph {
+
+    private final GraphBuilder builder;
+    private final ArrayList<Point> staged;
+    private final AtomicReference<GraphVersion> current;
+
+    private final int length;
+    private final int height;
+
+    public VersionedGraph(int length, int height) {
+        this.length = length;
+        this.height = height;
+        builder = new GraphBuilder(length, height);
+        staged = new ArrayList<>();
+        current = new AtomicReference<>(new GraphVersion(length, height));
+    }
+
+    /**
+     * Stages an obstacle for the next version. Only the writer thread may call
+     * this.
+     *
+     * @param p the position of the obstacle
+     */
+    public void addObstacle(Point p) {
+        if (p.x < 0 || p.x >= length || p.y < 0 || p.y >= height) {
+            return;
+        }
+        builder.addObstacle(p);
+        staged.add(p);
+    }
+
+    /**
+     * Builds the staged obstacles into a new version and swaps it in. Only the
+     * writer thread may call this. The same rules as GraphBuilder.buildMatrix()
+     * apply to what may be staged between two calls. Only the corners around
+     * the staged obstacles are scanned, the builder's adjacency matrix is
+     * never made, since versions keep their own visibility cache.
+     *
+     * @return the version that was published
+     */
+    public GraphVersion publish() {
+        builder.findWaypoints();
+        GraphVersion next = current.get().next(staged, builder);
+        current.set(next);
+        staged.clear();
+        return next;
+    }
+
+    /**
+     *
+     * @return The latest published version.
+     */
+    public GraphVersion current() {
+        return current.get();
+    }
+
+    /**
+     * Finds a path on the latest published version. Safe to call from any
+     * thread.
+     *
+     * @param start the initial position
+     * @param finish the desired ending location
+     * @return a list of waypoints describing where to go, or null if there is
+     * no path.
+     */
+    public Point[] getPath(Point start, Point finish) {
+        return current.get().getPath(start, finish);
+    }
+}